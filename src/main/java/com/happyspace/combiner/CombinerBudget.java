@@ -0,0 +1,207 @@
+package com.happyspace.combiner;
+
+import java.util.Collection;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.ToLongFunction;
+
+/**
+ * A combiner wide budget for items waiting in input queues.
+ * <p>
+ * Items are weighed as they are admitted by a producer, or as their queue is
+ * added to the combiner, and released as they are drained by the combiner.
+ * By default every item weighs one so the budget counts items, a weigher may
+ * instead estimate bytes.
+ * </p>
+ * <p>
+ * Every queue may use the budget up to a reserve fraction of the capacity, the
+ * high-water mark. Above it a queue is admitted only while the item fits under
+ *   capacity * (reserve + (1 - reserve) * share)
+ * where share is the priority of its queue relative to the maximum priority.
+ * So when the budget runs out low priority queues are throttled first and the
+ * highest priority queue can use all of it. An empty budget admits any one
+ * item so a heavy item can not be starved.
+ * </p>
+ */
+public class CombinerBudget<T> {
+    // by default throttle by priority above half of the capacity.
+    public static final double DEFAULT_RESERVE = 0.5;
+    // the total weight allowed in input queues.
+    private final long capacity;
+    // estimates the weight of an item.
+    private final ToLongFunction<? super T> weigher;
+    // the fraction of the capacity every queue may use.
+    private final double reserve;
+    // weight currently charged, guarded by lock.
+    private long used;
+    private final ReentrantLock lock = new ReentrantLock();
+    // signalled when weight is released.
+    private final Condition released = lock.newCondition();
+
+    /**
+     * Create a budget counted in items.
+     * @param capacity the number of items allowed in input queues.
+     */
+    public CombinerBudget(long capacity) {
+        this(capacity, item -> 1L);
+    }
+
+    /**
+     * Create a budget counted by weight.
+     * @param capacity the total weight allowed in input queues.
+     * @param weigher estimates the weight of an item, e.g. in bytes.
+     */
+    public CombinerBudget(long capacity, ToLongFunction<? super T> weigher) {
+        this(capacity, weigher, DEFAULT_RESERVE);
+    }
+
+    /**
+     * Create a budget counted by weight.
+     * @param capacity the total weight allowed in input queues.
+     * @param weigher estimates the weight of an item, e.g. in bytes.
+     * @param reserve the fraction of the capacity every queue may use before
+     *                queues are throttled by priority.
+     */
+    public CombinerBudget(long capacity, ToLongFunction<? super T> weigher, double reserve) {
+        if (capacity < 1) {
+            throw new IllegalArgumentException("capacity must be at least 1: " + capacity);
+        }
+        if (reserve < 0.0 || reserve > 1.0) {
+            throw new IllegalArgumentException("reserve must be between 0 and 1: " + reserve);
+        }
+        this.capacity = capacity;
+        this.weigher = weigher;
+        this.reserve = reserve;
+    }
+
+    /**
+     * @return the weight currently charged.
+     */
+    public long getUsed() {
+        lock.lock();
+        try {
+            return used;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * @return the total weight allowed in input queues.
+     */
+    public long getCapacity() {
+        return capacity;
+    }
+
+    /**
+     * @return the estimated weight of an item.
+     */
+    long weigh(T item) {
+        return weigher.applyAsLong(item);
+    }
+
+    /**
+     * @return the estimated weight of the items.
+     */
+    long weigh(Collection<? extends T> items) {
+        long weight = 0;
+        for (T item : items) {
+            weight += weigher.applyAsLong(item);
+        }
+        return weight;
+    }
+
+    /**
+     * Admit a weight if it fits under its share without waiting.
+     * @param share the priority of its queue relative to the maximum priority.
+     * @return if the weight was admitted.
+     */
+    boolean tryAcquire(long weight, double share) {
+        lock.lock();
+        try {
+            return admit(weight, share);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Admit a weight waiting up to the given time for it to fit under its share.
+     * @return if the weight was admitted.
+     * @throws InterruptedException if interrupted while waiting.
+     */
+    boolean tryAcquire(long weight, double share, long timeout, TimeUnit timeUnit) throws InterruptedException {
+        long nanos = timeUnit.toNanos(timeout);
+        lock.lockInterruptibly();
+        try {
+            while (!admit(weight, share)) {
+                if (nanos <= 0) {
+                    return false;
+                }
+                nanos = released.awaitNanos(nanos);
+            }
+            return true;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Admit a weight waiting as long as needed for it to fit under its share.
+     * @throws InterruptedException if interrupted while waiting.
+     */
+    void acquire(long weight, double share) throws InterruptedException {
+        lock.lockInterruptibly();
+        try {
+            while (!admit(weight, share)) {
+                released.await();
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Charge a weight without admission, for items already in a queue
+     * when it is added to the combiner.
+     */
+    void charge(long weight) {
+        lock.lock();
+        try {
+            used += weight;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Release weight that has left the input queues. Never drops below zero.
+     */
+    void release(long weight) {
+        if (weight <= 0) {
+            return;
+        }
+        lock.lock();
+        try {
+            used = Math.max(0, used - weight);
+            // waiters have different limits so wake them all.
+            released.signalAll();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Must hold lock. The weight is admitted if it fits under the limit for its
+     * share, or if nothing is charged.
+     */
+    private boolean admit(long weight, double share) {
+        double limit = capacity * (reserve + (1.0 - reserve) * Math.min(share, 1.0));
+        if (used > 0 && used + weight > limit) {
+            return false;
+        }
+        used += weight;
+        return true;
+    }
+}
@@ -1,5 +1,7 @@
 package com.happyspace.combiner;
 
+import java.util.ArrayList;
+import java.util.List;
 import java.util.concurrent.BlockingQueue;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
@@ -7,20 +9,47 @@ import java.util.concurrent.SynchronousQueue;
 import java.util.concurrent.atomic.AtomicBoolean;
 
 public class CombinerProcessorImpl<T> implements CombinerProcessor<T> {
+    // by default hand off one item per selected queue.
+    public static final int DEFAULT_QUANTUM = 1;
     // a thread to handle hand off.
     private final ExecutorService service;
     // a guard so this can only be started once.
     private AtomicBoolean hasStarted = new AtomicBoolean(false);
+    // the maximum number of items drained from a queue per selection.
+    private final int quantum;
+    // reusable buffer for drained items, only touched by the hand off thread.
+    private final List<T> buffer;
 
     /**
      * Create a new thread to handle hand off.
      */
     public CombinerProcessorImpl() {
+        this(DEFAULT_QUANTUM);
+    }
+
+    /**
+     * Create a new thread to handle hand off.
+     * @param quantum the maximum number of items to hand off each time a queue is selected.
+     */
+    public CombinerProcessorImpl(int quantum) {
+        if (quantum < 1) {
+            throw new IllegalArgumentException("quantum must be at least 1: " + quantum);
+        }
+        this.quantum = quantum;
+        this.buffer = new ArrayList<>(quantum);
         service = Executors.newSingleThreadExecutor();
     }
 
     /**
      * Start a thread to handle the hand off.
+     * Each selected queue is drained of up to quantum items with a single drainTo,
+     * so deep queues pay for one queue lock per quantum rather than per item.
+     * <p>
+     * Drained items have already left their input queue. If the thread is
+     * interrupted while handing them off the rest of the quantum is dropped,
+     * so up to quantum items can be lost on shutdown. They are not put back
+     * because that would reorder the input queue.
+     * </p>
      * @param input A blocking queue of queues
      * @param output The hand off point.
      * @throws Combiner.CombinerException
@@ -33,17 +62,20 @@ public class CombinerProcessorImpl<T> implements CombinerProcessor<T> {
                         while(!service.isShutdown()) {
                             try {
                                 QueueWrapper<T> take = input.take();
-                                BlockingQueue<T> queue = take.getQueue();
 
-                                if(!queue.isEmpty()) {
-                                    // make this as atomic as possible.
-                                    output.put(queue.take());
+                                buffer.clear();
+                                if(take.drainTo(buffer, quantum) > 0) {
+                                    for (T item : buffer) {
+                                        output.put(item);
+                                    }
+                                    buffer.clear();
                                     take.resetEmptyTimeOut();
                                 }
                                 else {
                                     take.addToEmptyTimeOut();
                                 }
                             } catch (InterruptedException e) {
+                                // undelivered items left in buffer are dropped, see above.
                                 service.shutdown();
                             }
                         }
@@ -51,4 +83,11 @@ public class CombinerProcessorImpl<T> implements CombinerProcessor<T> {
                     service.execute(r);
                 }
             }
+
+    /**
+     * @return the maximum number of items handed off per selection.
+     */
+    public int getQuantum() {
+        return quantum;
+    }
 }
@@ -0,0 +1,181 @@
+package com.happyspace.combiner;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.SynchronousQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Hands off work to several consumer threads while keeping the items of each
+ * input queue in order.
+ * <p>
+ * Consumers take a {@link Batch} of items from a single input queue and must
+ * release it once processed. Until then no other batch from that queue is
+ * handed out. Selections of a queue that is in flight are kept as credit and
+ * handed off on release.
+ * </p>
+ * <p>
+ * Like the SynchronousQueue hand off, selections are only claimed while there
+ * is consumer capacity. At most maxOutstanding selections are ready, in flight
+ * or credited at once, so consumers that fall behind slow the claim thread
+ * rather than letting every queue build up credit, and each queue is served
+ * in proportion to how often it is selected. This also bounds the credit of
+ * any one queue.
+ * </p>
+ * The output queue passed to process is not used, consumers call take or poll.
+ */
+public class OrderedCombinerProcessor<T> implements CombinerProcessor<T> {
+    // a thread to claim selected queues.
+    private final ExecutorService service;
+    // a guard so this can only be started once.
+    private AtomicBoolean hasStarted = new AtomicBoolean(false);
+    // the maximum number of items in a batch.
+    private final int quantum;
+    // batches waiting for a consumer, at most one per input queue.
+    private final BlockingQueue<Batch<T>> ready = new LinkedBlockingQueue<>();
+    // one permit per selection that is ready, in flight or credited.
+    private final Semaphore outstanding;
+
+    /**
+     * Create a new thread to claim queues for hand off.
+     * @param maxOutstanding the maximum number of selections ready, in flight
+     *                       or credited, usually the number of consumer threads.
+     */
+    public OrderedCombinerProcessor(int maxOutstanding) {
+        this(CombinerProcessorImpl.DEFAULT_QUANTUM, maxOutstanding);
+    }
+
+    /**
+     * Create a new thread to claim queues for hand off.
+     * @param quantum the maximum number of items in a batch.
+     * @param maxOutstanding the maximum number of selections ready, in flight
+     *                       or credited, usually the number of consumer threads.
+     */
+    public OrderedCombinerProcessor(int quantum, int maxOutstanding) {
+        if (quantum < 1) {
+            throw new IllegalArgumentException("quantum must be at least 1: " + quantum);
+        }
+        if (maxOutstanding < 1) {
+            throw new IllegalArgumentException("maxOutstanding must be at least 1: " + maxOutstanding);
+        }
+        this.quantum = quantum;
+        this.outstanding = new Semaphore(maxOutstanding);
+        service = Executors.newSingleThreadExecutor();
+    }
+
+    /**
+     * Start a thread that claims selected queues while there is consumer
+     * capacity. A selection of a queue with no batch in flight is handed off
+     * at once, otherwise it is credited to the owner of the queue.
+     * @param input A blocking queue of queues
+     * @param output Not used, see take.
+     * @throws Combiner.CombinerException
+     */
+    @Override
+    public void process(BlockingQueue<QueueWrapper<T>> input, SynchronousQueue<T> output) throws Combiner.CombinerException {
+        if (hasStarted.compareAndSet(false, true)) {
+            Runnable r = () -> {
+                while (!service.isShutdown()) {
+                    try {
+                        outstanding.acquire();
+                        QueueWrapper<T> take = input.take();
+                        if (take.acquireHandOff()) {
+                            handOff(take);
+                        }
+                    } catch (InterruptedException e) {
+                        service.shutdown();
+                    }
+                }
+            };
+            service.execute(r);
+        }
+    }
+
+    /**
+     * Wait for a batch of items from a single input queue.
+     * The batch must be released when its items have been processed.
+     * @return the next batch.
+     * @throws InterruptedException if interrupted while waiting.
+     */
+    public Batch<T> take() throws InterruptedException {
+        return ready.take();
+    }
+
+    /**
+     * Wait up to the given time for a batch of items from a single input queue.
+     * @return the next batch or null if none was ready in time.
+     * @throws InterruptedException if interrupted while waiting.
+     */
+    public Batch<T> poll(long timeout, TimeUnit timeUnit) throws InterruptedException {
+        return ready.poll(timeout, timeUnit);
+    }
+
+    /**
+     * Called by the owner of a queue. Drain the next batch from the queue.
+     * If the queue is empty give up ownership and drop its credit, there is
+     * nothing left to hand off for those selections.
+     */
+    private void handOff(QueueWrapper<T> queue) {
+        List<T> items = new ArrayList<>(quantum);
+        if (queue.drainTo(items, quantum) > 0) {
+            queue.resetEmptyTimeOut();
+            ready.add(new Batch<>(this, queue, items));
+        }
+        else {
+            queue.addToEmptyTimeOut();
+            outstanding.release(queue.clearHandOffs());
+        }
+    }
+
+    /**
+     * Items from one input queue owned by a consumer until released.
+     */
+    public static final class Batch<T> {
+        private final OrderedCombinerProcessor<T> processor;
+        private final QueueWrapper<T> queue;
+        private final List<T> items;
+        // a guard so the queue is released only once.
+        private final AtomicBoolean released = new AtomicBoolean(false);
+
+        private Batch(OrderedCombinerProcessor<T> processor, QueueWrapper<T> queue, List<T> items) {
+            this.processor = processor;
+            this.queue = queue;
+            this.items = Collections.unmodifiableList(items);
+        }
+
+        /**
+         * @return the items in the order they were taken from the input queue.
+         */
+        public List<T> getItems() {
+            return items;
+        }
+
+        /**
+         * @return the input queue these items came from.
+         */
+        public BlockingQueue<T> getQueue() {
+            return queue.getQueue();
+        }
+
+        /**
+         * Acknowledge that the items have been processed so the next
+         * batch from the same input queue may be handed off.
+         */
+        public void release() {
+            if (!released.compareAndSet(false, true)) {
+                throw new IllegalStateException("batch already released");
+            }
+            processor.outstanding.release();
+            if (queue.releaseHandOff()) {
+                processor.handOff(queue);
+            }
+        }
+    }
+}
@@ -5,8 +5,11 @@ import org.threeten.extra.Temporals;
 import java.time.Duration;
 import java.time.LocalDateTime;
 import java.time.temporal.ChronoUnit;
+import java.util.List;
+import java.util.concurrent.locks.ReentrantLock;
 import java.util.concurrent.BlockingQueue;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 
 /**
  * A wrapper class for BlockingQueue to record metadata for that queue like empty time out.
@@ -26,11 +29,31 @@ final class QueueWrapper<T> implements Comparable<QueueWrapper> {
     private final BlockingQueue<T> queue;
     // how long this queue can remain empty.
     private final Duration isEmptyTimeout;
+    // selections waiting to be handed off, the first one owns the queue.
+    // bounded by the hand off, see OrderedCombinerProcessor.
+    private final AtomicInteger handOffs = new AtomicInteger(0);
+    // guards budget, charged and retired so draining, charging and retiring do not interleave.
+    private final ReentrantLock budgetLock = new ReentrantLock();
+    // the budget charged for items in this queue, null if there is none or retired.
+    private CombinerBudget<T> budget;
+    // set once the queue is removed from the combiner, nothing more is drained.
+    private boolean retired;
+    // weight charged to the budget for items in this queue.
+    private long charged;
 
     public QueueWrapper(BlockingQueue<T> queue,
                         Double priority,
                         long isEmptyTimeout,
                         TimeUnit timeUnit) {
+        this(queue, priority, isEmptyTimeout, timeUnit, null);
+    }
+
+    public QueueWrapper(BlockingQueue<T> queue,
+                        Double priority,
+                        long isEmptyTimeout,
+                        TimeUnit timeUnit,
+                        CombinerBudget<T> budget) {
+        this.budget = budget;
         this.emptyPeriod = Duration.ZERO;
         this.priority = priority;
         this.queue = queue;
@@ -119,6 +142,127 @@ final class QueueWrapper<T> implements Comparable<QueueWrapper> {
         this.emptyStartTime = null;
     }
 
+    /**
+     * Record a selection of this queue for hand off.
+     * @return true if the caller now owns the queue and must hand off from it.
+     */
+    protected boolean acquireHandOff() {
+        return handOffs.getAndIncrement() == 0;
+    }
+
+    /**
+     * Complete one hand off by the owner of the queue.
+     * @return true if selections are still pending and the caller keeps ownership.
+     */
+    protected boolean releaseHandOff() {
+        return handOffs.decrementAndGet() > 0;
+    }
+
+    /**
+     * Give up ownership of the queue dropping all pending selections.
+     * @return the number of selections dropped, including the owner's.
+     */
+    protected int clearHandOffs() {
+        return handOffs.getAndSet(0);
+    }
+
+    /**
+     * Drain up to max items from the queue releasing their weight from the budget.
+     * Only weight charged for this queue is released. Items added to the queue
+     * directly are not charged, draining them releases the weight of charged
+     * items still queued, so the budget then under counts the backlog.
+     * @param items where to add the drained items.
+     * @param max the maximum number of items to drain.
+     * @return the number of items drained.
+     */
+    protected int drainTo(List<T> items, int max) {
+        budgetLock.lock();
+        try {
+            // a selection made before the queue was removed.
+            if (retired) {
+                return 0;
+            }
+            int start = items.size();
+            int drained = queue.drainTo(items, max);
+            if (budget != null && drained > 0) {
+                uncharge(budget.weigh(items.subList(start, start + drained)));
+            }
+            return drained;
+        } finally {
+            budgetLock.unlock();
+        }
+    }
+
+    /**
+     * Charge the budget for the items already in the queue.
+     * Called when the queue is added to the combiner.
+     */
+    protected void chargeQueued() {
+        budgetLock.lock();
+        try {
+            if (budget != null) {
+                long weight = budget.weigh(queue);
+                budget.charge(weight);
+                charged += weight;
+            }
+        } finally {
+            budgetLock.unlock();
+        }
+    }
+
+    /**
+     * Record weight admitted by the budget for an item about to be added to the queue.
+     * @return false if the queue was retired, the caller must release the weight.
+     */
+    protected boolean charge(long weight) {
+        budgetLock.lock();
+        try {
+            if (budget == null) {
+                return false;
+            }
+            charged += weight;
+            return true;
+        } finally {
+            budgetLock.unlock();
+        }
+    }
+
+    /**
+     * Release weight charged for this queue, at most what is still charged.
+     * Nothing is released once retired, retire released it all.
+     */
+    protected void uncharge(long weight) {
+        budgetLock.lock();
+        try {
+            if (budget != null) {
+                long release = Math.min(weight, charged);
+                charged -= release;
+                budget.release(release);
+            }
+        } finally {
+            budgetLock.unlock();
+        }
+    }
+
+    /**
+     * Stop draining the queue and release all weight charged for it.
+     * Called when the queue is removed from the combiner, selections of it
+     * still on their way to a processor then hand off nothing.
+     */
+    protected void retire() {
+        budgetLock.lock();
+        try {
+            retired = true;
+            if (budget != null) {
+                budget.release(charged);
+                charged = 0;
+                budget = null;
+            }
+        } finally {
+            budgetLock.unlock();
+        }
+    }
+
     /**
      * @return if the queue is empty.
      */
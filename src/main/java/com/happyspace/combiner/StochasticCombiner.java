@@ -19,19 +19,21 @@ public class StochasticCombiner<T> extends Combiner<T> {
     private static final int PROCESS_BATCH_SIZE = 10;
     // the maximum priority used below to randomly select a queue
     private AtomicReference<Double> maxWeight = new AtomicReference<>(0.0);
-    // queues held in priority order.
-    // use a set for identity and a tree for a balance between add, remove and find.
-    private final Set<QueueWrapper<T>> queues = new TreeSet<>(Collections.reverseOrder());
-    // holding area for queues to remove.
-    private final Set<QueueWrapper<T>> remove = Collections.synchronizedSet(new TreeSet<>());
+    // queues keyed by the queue itself so queues of equal priority are distinct.
+    // only changed under the main lock, concurrent so producers can find a queue without it.
+    private final ConcurrentMap<BlockingQueue<T>, QueueWrapper<T>> queues = new ConcurrentHashMap<>();
+    // holding area for queues to remove, wrappers are equal if their queues are.
+    private final Set<QueueWrapper<T>> remove = Collections.synchronizedSet(new LinkedHashSet<>());
     // holding area for queues to add.
-    private final Set<QueueWrapper<T>> add = Collections.synchronizedSet(new TreeSet<>());
+    private final Set<QueueWrapper<T>> add = Collections.synchronizedSet(new LinkedHashSet<>());
     // a thread to hand off work
     private CombinerProcessor<T> processor;
     // a thread to do the accounting for this data structure.
     private final ExecutorService service;
     // a channel to send queues to hand off.
     private final BlockingQueue<QueueWrapper<T>> channel;
+    // limits the items waiting in input queues, null if unbounded.
+    private final CombinerBudget<T> budget;
     // a guard so processes are not started more than once.
     private AtomicBoolean hasStarted = new AtomicBoolean(false);
     // the main lock for this data structure.
@@ -44,10 +46,46 @@ public class StochasticCombiner<T> extends Combiner<T> {
      * @param outputQueue the hand off point.
      */
     public StochasticCombiner(SynchronousQueue<T> outputQueue) {
+        this(outputQueue, CombinerProcessorImpl.DEFAULT_QUANTUM);
+    }
+
+    /**
+     * Create a combiner whose hand off drains up to quantum items from a queue
+     * each time that queue is selected. Priority ratios hold over a window of
+     * selections rather than per item.
+     * @param outputQueue the hand off point.
+     * @param quantum the maximum number of items handed off per selection.
+     */
+    public StochasticCombiner(SynchronousQueue<T> outputQueue, int quantum) {
+        this(outputQueue, new CombinerProcessorImpl<>(quantum));
+    }
+
+    /**
+     * Create a combiner that hands off selected queues to the given processor.
+     * @param outputQueue the hand off point.
+     * @param processor hands off items from the queues selected by this combiner.
+     */
+    public StochasticCombiner(SynchronousQueue<T> outputQueue, CombinerProcessor<T> processor) {
+        this(outputQueue, processor, null);
+    }
+
+    /**
+     * Create a combiner that limits the items waiting in its input queues.
+     * Items in a queue when it is added are charged to the budget. Producers
+     * must then add items only through offer or put. Items added to a queue
+     * directly are not charged, and draining them releases weight charged for
+     * other items, so the budget becomes approximate and admits more than its
+     * capacity.
+     * @param outputQueue the hand off point.
+     * @param processor hands off items from the queues selected by this combiner.
+     * @param budget limits the items waiting in input queues, null if unbounded.
+     */
+    public StochasticCombiner(SynchronousQueue<T> outputQueue, CombinerProcessor<T> processor, CombinerBudget<T> budget) {
         super(outputQueue);
         channel = new LinkedBlockingQueue<>();
         service = Executors.newSingleThreadExecutor();
-        processor = new CombinerProcessorImpl<>();
+        this.processor = processor;
+        this.budget = budget;
     }
 
     /**
@@ -65,7 +103,7 @@ public class StochasticCombiner<T> extends Combiner<T> {
                               double priority, long isEmptyTimeout,
                               TimeUnit timeUnit) throws CombinerException {
         if (!hasInputQueue(queue)) {
-            QueueWrapper<T> qw = new QueueWrapper<>(queue, priority, isEmptyTimeout, timeUnit);
+            QueueWrapper<T> qw = new QueueWrapper<>(queue, priority, isEmptyTimeout, timeUnit, budget);
             add.add(qw);
         }
     }
@@ -84,6 +122,126 @@ public class StochasticCombiner<T> extends Combiner<T> {
         remove.add(qw);
     }
 
+    /**
+     * Add an item to an input queue if the budget admits it without waiting.
+     * A queue becomes an input queue once the combiner next adds queues, not
+     * when addInputQueue returns.
+     *
+     * @param queue an input queue of this combiner
+     * @param item  the item to add
+     * @return if the item was added
+     * @throws CombinerException if the queue is not an input queue
+     */
+    public boolean offer(BlockingQueue<T> queue, T item) throws CombinerException {
+        QueueWrapper<T> qw = registeredQueue(queue);
+        if (budget == null) {
+            return queue.offer(item);
+        }
+        long weight = budget.weigh(item);
+        if (!budget.tryAcquire(weight, share(qw))) {
+            return false;
+        }
+        charge(qw, weight);
+        if (!queue.offer(item)) {
+            qw.uncharge(weight);
+            return false;
+        }
+        return true;
+    }
+
+    /**
+     * Add an item to an input queue waiting up to the given time for the budget
+     * to admit it.
+     *
+     * @param queue    an input queue of this combiner
+     * @param item     the item to add
+     * @param timeout  how long to wait
+     * @param timeUnit the unit of time to measure timeout
+     * @return if the item was added
+     * @throws CombinerException    if the queue is not an input queue
+     * @throws InterruptedException if interrupted while waiting
+     */
+    public boolean offer(BlockingQueue<T> queue, T item, long timeout, TimeUnit timeUnit)
+            throws CombinerException, InterruptedException {
+        QueueWrapper<T> qw = registeredQueue(queue);
+        if (budget == null) {
+            return queue.offer(item, timeout, timeUnit);
+        }
+        long deadline = System.nanoTime() + timeUnit.toNanos(timeout);
+        long weight = budget.weigh(item);
+        if (!budget.tryAcquire(weight, share(qw), timeout, timeUnit)) {
+            return false;
+        }
+        charge(qw, weight);
+        boolean added = false;
+        try {
+            added = queue.offer(item, deadline - System.nanoTime(), TimeUnit.NANOSECONDS);
+        } finally {
+            if (!added) {
+                qw.uncharge(weight);
+            }
+        }
+        return added;
+    }
+
+    /**
+     * Add an item to an input queue waiting as long as needed for the budget
+     * to admit it.
+     *
+     * @param queue an input queue of this combiner
+     * @param item  the item to add
+     * @throws CombinerException    if the queue is not an input queue
+     * @throws InterruptedException if interrupted while waiting
+     */
+    public void put(BlockingQueue<T> queue, T item) throws CombinerException, InterruptedException {
+        QueueWrapper<T> qw = registeredQueue(queue);
+        if (budget == null) {
+            queue.put(item);
+            return;
+        }
+        long weight = budget.weigh(item);
+        budget.acquire(weight, share(qw));
+        charge(qw, weight);
+        boolean added = false;
+        try {
+            queue.put(item);
+            added = true;
+        } finally {
+            if (!added) {
+                qw.uncharge(weight);
+            }
+        }
+    }
+
+    /**
+     * Record admitted weight against the queue. The queue may have been removed
+     * while the producer waited for the budget, then the weight is given back.
+     * If it is removed after this, removal releases the weight.
+     */
+    private void charge(QueueWrapper<T> qw, long weight) throws CombinerException {
+        if (!qw.charge(weight)) {
+            budget.release(weight);
+            throw new CombinerException("queue was removed from this combiner");
+        }
+    }
+
+    private QueueWrapper<T> registeredQueue(BlockingQueue<T> queue) throws CombinerException {
+        QueueWrapper<T> qw = queues.get(queue);
+        if (qw == null) {
+            throw new CombinerException("queue is not an input queue of this combiner");
+        }
+        return qw;
+    }
+
+    /**
+     * The priority of a queue relative to the maximum priority. A queue just
+     * added may not be counted in the maximum yet.
+     */
+    private double share(QueueWrapper<T> qw) {
+        double max = Math.max(maxWeight.get(), qw.getPriority());
+        return max > 0.0 ? qw.getPriority() / max : 1.0;
+    }
+
     /**
      * Acquire a lock to start a removal phase.
      * Remove queues that have been requested to be removed and those that have timed out.
@@ -95,15 +253,20 @@ public class StochasticCombiner<T> extends Combiner<T> {
         try {
             boolean shouldRecalculate = false;
 
-            for (QueueWrapper<T> queue : queues) {
+            for (QueueWrapper<T> queue : queues.values()) {
                 if(queue.isTimedOut()) {
                     remove.add(queue);
                 }
             }
 
             for (QueueWrapper<T> r : remove) {
-                queues.remove(r);
-                if (r.getPriority().equals(maxWeight.get())) {
+                // r may be a place holder, find the wrapper that was added.
+                QueueWrapper<T> removed = queues.remove(r.getQueue());
+                if (removed == null) {
+                    continue;
+                }
+                removed.retire();
+                if (removed.getPriority().equals(maxWeight.get())) {
                     shouldRecalculate = true;
                 }
             }
@@ -129,7 +292,12 @@ public class StochasticCombiner<T> extends Combiner<T> {
         mainLock.lock();
         try {
             for (QueueWrapper<T> a : add) {
-                queues.add(a);
+                if (queues.containsKey(a.getQueue())) {
+                    continue;
+                }
+                // items already in the queue count against the budget.
+                a.chargeQueued();
+                queues.put(a.getQueue(), a);
                 if (a.getPriority() > maxWeight.get()) {
                     maxWeight.set(a.getPriority());
                 }
@@ -198,9 +366,9 @@ public class StochasticCombiner<T> extends Combiner<T> {
         List<QueueWrapper<T>> results = new ArrayList<>();
         // if there is just one
         if (queues.size() == 1) {
-            results.addAll(queues);
+            results.addAll(queues.values());
         } else {
-            List<QueueWrapper<T>> list = queues.stream().collect(Collectors.toCollection(ArrayList::new));
+            List<QueueWrapper<T>> list = queues.values().stream().collect(Collectors.toCollection(ArrayList::new));
             double mm = this.maxWeight.get();
             boolean notAccepted;
             int index = 0;
@@ -228,9 +396,7 @@ public class StochasticCombiner<T> extends Combiner<T> {
      */
     @Override
     public boolean hasInputQueue(BlockingQueue<T> queue) {
-        // private detail
-        QueueWrapper<T> qw = new QueueWrapper<>(queue);
-        return queues.contains(qw);
+        return queues.containsKey(queue);
     }
 
     /**
@@ -239,7 +405,7 @@ public class StochasticCombiner<T> extends Combiner<T> {
      */
     private double calculateMaxWeight() {
         double max = 0.0;
-        for (QueueWrapper<T> queue : queues) {
+        for (QueueWrapper<T> queue : queues.values()) {
             if (queue.getPriority() > max) {
                 max = queue.getPriority();
             }
@@ -252,6 +418,6 @@ public class StochasticCombiner<T> extends Combiner<T> {
      * Refactor when java valid byte code errors are not being thrown.
      */
     protected Set<QueueWrapper<T>> getQueues() {
-        return queues;
+        return new LinkedHashSet<>(queues.values());
     }
 }
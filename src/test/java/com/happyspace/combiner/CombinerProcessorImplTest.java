@@ -0,0 +1,47 @@
+package com.happyspace.combiner;
+
+import org.junit.Test;
+
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.SynchronousQueue;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+/**
+ * Test CombinerProcessorImpl
+ */
+public class CombinerProcessorImplTest {
+
+    /**
+     * A single selection of a deep queue should hand off a quantum of items in order.
+     */
+    @Test
+    public void processQuantum() throws Exception {
+        BlockingQueue<Integer> queue = new LinkedBlockingQueue<>();
+        for (int i = 0; i < 10; i++) {
+            queue.add(i);
+        }
+        BlockingQueue<QueueWrapper<Integer>> channel = new LinkedBlockingQueue<>();
+        channel.add(new QueueWrapper<>(queue, 1.0, 10, TimeUnit.SECONDS));
+        SynchronousQueue<Integer> output = new SynchronousQueue<>();
+
+        CombinerProcessorImpl<Integer> processor = new CombinerProcessorImpl<>(4);
+        assertEquals(4, processor.getQuantum());
+        processor.process(channel, output);
+
+        for (int i = 0; i < 4; i++) {
+            assertEquals(Integer.valueOf(i), output.poll(5, TimeUnit.SECONDS));
+        }
+        // one selection, so nothing more is handed off.
+        assertNull(output.poll(200, TimeUnit.MILLISECONDS));
+        assertEquals(6, queue.size());
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void invalidQuantum() throws Exception {
+        new CombinerProcessorImpl<Integer>(0);
+    }
+}
@@ -2,12 +2,23 @@ package com.happyspace.combiner;
 
 import org.junit.Test;
 
+import java.util.ArrayList;
 import java.util.Set;
 import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 import java.util.concurrent.LinkedBlockingQueue;
 import java.util.concurrent.SynchronousQueue;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
 
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
 import static org.junit.Assert.assertTrue;
 
 // @RunWith(PowerMockRunner.class)
@@ -100,6 +111,355 @@ public class StochasticCombinerTest {
         assertTrue(diff < 1e-1);
     }
 
+    /**
+     * Draining several items per selection should still respect priority over a window.
+     */
+    @Test
+    public void processWithQuantum() throws Exception {
+        SynchronousQueue<Integer> si = new SynchronousQueue<>();
+        StochasticCombiner<Integer> gi = new StochasticCombiner<>(si, 4);
+        BlockingQueue<Integer> q1 = new LinkedBlockingQueue<>();
+        BlockingQueue<Integer> q2 = new LinkedBlockingQueue<>();
+        TestUtil.fill(q1, 9, 2000);
+        TestUtil.fill(q2, 1, 2000);
+
+        gi.addInputQueue(q1, 9.0, 10, TimeUnit.SECONDS);
+        gi.addInputQueue(q2, 1.0, 10, TimeUnit.SECONDS);
+        gi.process();
+
+        int nines = 0;
+        for (int i = 0; i < 2000; i++) {
+            if(si.take() == 9) {
+                nines += 1;
+            }
+        }
+        double diff = Math.abs(nines / 2000.0 - 9.0 / 10.0);
+        assertTrue(diff < 1e-1);
+    }
+
+    /**
+     * Several consumers should see each queue in order and never hold
+     * two batches of the same queue at once.
+     */
+    @Test
+    public void processOrdered() throws Exception {
+        OrderedCombinerProcessor<Integer> op = new OrderedCombinerProcessor<>(3, 4);
+        StochasticCombiner<Integer> gi = new StochasticCombiner<>(new SynchronousQueue<>(), op);
+        BlockingQueue<Integer> q1 = new LinkedBlockingQueue<>();
+        BlockingQueue<Integer> q2 = new LinkedBlockingQueue<>();
+        BlockingQueue<Integer> q3 = new LinkedBlockingQueue<>();
+        for (int i = 0; i < 1000; i++) {
+            q1.add(i);
+            q2.add(i);
+            q3.add(i);
+        }
+        gi.addInputQueue(q1, 5.0, 10, TimeUnit.SECONDS);
+        gi.addInputQueue(q2, 3.0, 10, TimeUnit.SECONDS);
+        gi.addInputQueue(q3, 1.0, 10, TimeUnit.SECONDS);
+        gi.process();
+
+        ConcurrentMap<BlockingQueue<Integer>, Integer> last = new ConcurrentHashMap<>();
+        ConcurrentMap<BlockingQueue<Integer>, AtomicInteger> inFlight = new ConcurrentHashMap<>();
+        AtomicBoolean failed = new AtomicBoolean(false);
+        CountDownLatch done = new CountDownLatch(3000);
+        ExecutorService consumers = Executors.newFixedThreadPool(4);
+        for (int c = 0; c < 4; c++) {
+            consumers.execute(() -> {
+                try {
+                    while (true) {
+                        OrderedCombinerProcessor.Batch<Integer> batch = op.take();
+                        AtomicInteger owners = inFlight.computeIfAbsent(batch.getQueue(), q -> new AtomicInteger());
+                        if (owners.incrementAndGet() != 1) {
+                            failed.set(true);
+                        }
+                        for (Integer item : batch.getItems()) {
+                            Integer previous = last.put(batch.getQueue(), item);
+                            if (previous != null && previous + 1 != item) {
+                                failed.set(true);
+                            }
+                            done.countDown();
+                        }
+                        owners.decrementAndGet();
+                        batch.release();
+                    }
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            });
+        }
+        assertTrue(done.await(30, TimeUnit.SECONDS));
+        consumers.shutdownNow();
+        assertFalse(failed.get());
+    }
+
+    /**
+     * When consumers are the bottleneck items should still be handed off
+     * in proportion to priority.
+     */
+    @Test
+    public void processOrderedShares() throws Exception {
+        OrderedCombinerProcessor<Integer> op = new OrderedCombinerProcessor<>(3);
+        StochasticCombiner<Integer> gi = new StochasticCombiner<>(new SynchronousQueue<>(), op);
+        BlockingQueue<Integer> q1 = new LinkedBlockingQueue<>();
+        BlockingQueue<Integer> q2 = new LinkedBlockingQueue<>();
+        BlockingQueue<Integer> q3 = new LinkedBlockingQueue<>();
+        TestUtil.fill(q1, 5, 2000);
+        TestUtil.fill(q2, 3, 2000);
+        TestUtil.fill(q3, 1, 2000);
+        gi.addInputQueue(q1, 5.0, 10, TimeUnit.SECONDS);
+        gi.addInputQueue(q2, 3.0, 10, TimeUnit.SECONDS);
+        gi.addInputQueue(q3, 1.0, 10, TimeUnit.SECONDS);
+        gi.process();
+
+        ConcurrentMap<Integer, AtomicInteger> counts = new ConcurrentHashMap<>();
+        CountDownLatch done = new CountDownLatch(900);
+        ExecutorService consumers = Executors.newFixedThreadPool(3);
+        for (int c = 0; c < 3; c++) {
+            consumers.execute(() -> {
+                try {
+                    while (true) {
+                        OrderedCombinerProcessor.Batch<Integer> batch = op.take();
+                        // slow consumers.
+                        TimeUnit.MILLISECONDS.sleep(2);
+                        for (Integer item : batch.getItems()) {
+                            counts.computeIfAbsent(item, k -> new AtomicInteger()).incrementAndGet();
+                            done.countDown();
+                        }
+                        batch.release();
+                    }
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            });
+        }
+        assertTrue(done.await(30, TimeUnit.SECONDS));
+        consumers.shutdownNow();
+
+        double total = counts.values().stream().mapToInt(AtomicInteger::get).sum();
+        assertEquals(5.0 / 9.0, counts.get(5).get() / total, 1e-1);
+        assertEquals(3.0 / 9.0, counts.get(3).get() / total, 1e-1);
+        assertEquals(1.0 / 9.0, counts.get(1).get() / total, 1e-1);
+    }
+
+    /**
+     * Low priority producers should be throttled before high priority ones
+     * and admitted again once the combiner drains the input queues.
+     */
+    @Test
+    public void admission() throws Exception {
+        SynchronousQueue<Integer> si = new SynchronousQueue<>();
+        CombinerBudget<Integer> budget = new CombinerBudget<>(10);
+        StochasticCombiner<Integer> gi = new StochasticCombiner<>(si, new CombinerProcessorImpl<>(), budget);
+        BlockingQueue<Integer> q1 = new LinkedBlockingQueue<>();
+        BlockingQueue<Integer> q2 = new LinkedBlockingQueue<>();
+        gi.addInputQueue(q1, 9.0, 10, TimeUnit.SECONDS);
+        gi.addInputQueue(q2, 1.0, 10, TimeUnit.SECONDS);
+        gi.addQueues();
+
+        // low priority may use the reserve, half, plus a ninth of the rest.
+        int admitted = 0;
+        while (gi.offer(q2, 1)) {
+            admitted++;
+        }
+        assertEquals(5, admitted);
+        // high priority may use all of it.
+        admitted = 0;
+        while (gi.offer(q1, 9)) {
+            admitted++;
+        }
+        assertEquals(5, admitted);
+        assertEquals(10, budget.getUsed());
+        assertFalse(gi.offer(q1, 9, 10, TimeUnit.MILLISECONDS));
+
+        ExecutorService producer = Executors.newSingleThreadExecutor();
+        Future<?> put = producer.submit(() -> {
+            gi.put(q1, 9);
+            return null;
+        });
+        gi.process();
+        for (int i = 0; i < 10; i++) {
+            si.take();
+        }
+        put.get(5, TimeUnit.SECONDS);
+        assertTrue(gi.offer(q1, 9, 5, TimeUnit.SECONDS));
+        producer.shutdown();
+    }
+
+    /**
+     * While the budget is lightly used low priority producers are admitted,
+     * even a queue of priority zero.
+     */
+    @Test
+    public void admissionLightlyUsed() throws Exception {
+        CombinerBudget<Integer> budget = new CombinerBudget<>(1000);
+        StochasticCombiner<Integer> gi = new StochasticCombiner<>(new SynchronousQueue<>(), new CombinerProcessorImpl<>(), budget);
+        BlockingQueue<Integer> q1 = new LinkedBlockingQueue<>();
+        BlockingQueue<Integer> q2 = new LinkedBlockingQueue<>();
+        BlockingQueue<Integer> q3 = new LinkedBlockingQueue<>();
+        gi.addInputQueue(q1, 100.0, 10, TimeUnit.SECONDS);
+        gi.addInputQueue(q2, 1.0, 10, TimeUnit.SECONDS);
+        gi.addInputQueue(q3, 0.0, 10, TimeUnit.SECONDS);
+        gi.addQueues();
+
+        for (int i = 0; i < 100; i++) {
+            assertTrue(gi.offer(q1, 100));
+            assertTrue(gi.offer(q2, 1));
+            assertTrue(gi.offer(q3, 0));
+        }
+        assertEquals(300, budget.getUsed());
+
+        // past the reserve priority zero is throttled first, then priority one.
+        int zero = 0;
+        while (gi.offer(q3, 0)) {
+            zero++;
+        }
+        assertEquals(200, zero);
+        int one = 0;
+        while (gi.offer(q2, 1)) {
+            one++;
+        }
+        assertEquals(5, one);
+        int hundred = 0;
+        while (gi.offer(q1, 100)) {
+            hundred++;
+        }
+        assertEquals(495, hundred);
+    }
+
+    /**
+     * Items in a queue when it is added are charged, items added directly
+     * are not and draining them never frees more than was charged.
+     */
+    @Test
+    public void admissionPrefilled() throws Exception {
+        CombinerBudget<Integer> budget = new CombinerBudget<>(10);
+        StochasticCombiner<Integer> gi = new StochasticCombiner<>(new SynchronousQueue<>(), new CombinerProcessorImpl<>(), budget);
+        BlockingQueue<Integer> q1 = new LinkedBlockingQueue<>();
+        TestUtil.fill(q1, 1, 50);
+        gi.addInputQueue(q1, 1.0, 10, TimeUnit.SECONDS);
+        gi.addQueues();
+        assertEquals(50, budget.getUsed());
+        assertFalse(gi.offer(q1, 1));
+
+        TestUtil.fill(q1, 1, 5);
+        drain(gi);
+        assertEquals(0, budget.getUsed());
+
+        int admitted = 0;
+        while (gi.offer(q1, 1)) {
+            admitted++;
+        }
+        assertEquals(10, admitted);
+        assertEquals(10, budget.getUsed());
+    }
+
+    /**
+     * Removing a queue releases what was charged for it and refuses producers.
+     */
+    @Test
+    public void admissionRemoved() throws Exception {
+        CombinerBudget<Integer> budget = new CombinerBudget<>(10);
+        StochasticCombiner<Integer> gi = new StochasticCombiner<>(new SynchronousQueue<>(), new CombinerProcessorImpl<>(), budget);
+        BlockingQueue<Integer> q1 = new LinkedBlockingQueue<>();
+        BlockingQueue<Integer> q2 = new LinkedBlockingQueue<>();
+        TestUtil.fill(q1, 1, 3);
+        gi.addInputQueue(q1, 1.0, 10, TimeUnit.SECONDS);
+        gi.addInputQueue(q2, 2.0, 10, TimeUnit.SECONDS);
+        gi.addQueues();
+        assertTrue(gi.offer(q1, 1));
+        assertTrue(gi.offer(q2, 2));
+        assertEquals(5, budget.getUsed());
+        QueueWrapper<Integer> removed = null;
+        for (QueueWrapper<Integer> qw : gi.getQueues()) {
+            if (qw.getQueue() == q1) {
+                removed = qw;
+            }
+        }
+
+        gi.removeInputQueue(q1);
+        gi.removeQueues();
+        assertFalse(gi.getQueues().contains(removed));
+        assertFalse(gi.hasInputQueue(q1));
+        assertTrue(gi.hasInputQueue(q2));
+        assertEquals(1, budget.getUsed());
+        // a selection made before removal hands off nothing.
+        assertEquals(0, removed.drainTo(new ArrayList<>(), Integer.MAX_VALUE));
+        assertEquals(1, budget.getUsed());
+
+        boolean refused = false;
+        try {
+            gi.offer(q1, 1);
+        } catch (Combiner.CombinerException e) {
+            refused = true;
+        }
+        assertTrue(refused);
+        assertEquals(1, budget.getUsed());
+    }
+
+    /**
+     * A removed queue that is added again is charged and drained through
+     * its new wrapper only.
+     */
+    @Test
+    public void admissionReadded() throws Exception {
+        CombinerBudget<Integer> budget = new CombinerBudget<>(10);
+        StochasticCombiner<Integer> gi = new StochasticCombiner<>(new SynchronousQueue<>(), new CombinerProcessorImpl<>(), budget);
+        BlockingQueue<Integer> q1 = new LinkedBlockingQueue<>();
+        gi.addInputQueue(q1, 1.0, 10, TimeUnit.SECONDS);
+        gi.addQueues();
+        QueueWrapper<Integer> first = gi.getQueues().iterator().next();
+        assertTrue(gi.offer(q1, 1));
+
+        gi.removeInputQueue(q1);
+        gi.removeQueues();
+        assertTrue(gi.getQueues().isEmpty());
+        assertEquals(0, budget.getUsed());
+
+        gi.addInputQueue(q1, 1.0, 10, TimeUnit.SECONDS);
+        gi.addQueues();
+        assertEquals(1, gi.getQueues().size());
+        QueueWrapper<Integer> second = gi.getQueues().iterator().next();
+        assertFalse(first == second);
+        // the item left in the queue is charged again.
+        assertEquals(1, budget.getUsed());
+        assertTrue(gi.offer(q1, 1));
+        assertEquals(2, budget.getUsed());
+
+        assertEquals(0, first.drainTo(new ArrayList<>(), Integer.MAX_VALUE));
+        drain(gi);
+        assertEquals(0, budget.getUsed());
+    }
+
+    /**
+     * Queues of equal priority are distinct input queues.
+     */
+    @Test
+    public void admissionEqualPriority() throws Exception {
+        CombinerBudget<Integer> budget = new CombinerBudget<>(10);
+        StochasticCombiner<Integer> gi = new StochasticCombiner<>(new SynchronousQueue<>(), new CombinerProcessorImpl<>(), budget);
+        BlockingQueue<Integer> q1 = new LinkedBlockingQueue<>();
+        BlockingQueue<Integer> q2 = new LinkedBlockingQueue<>();
+        gi.addInputQueue(q1, 1.0, 10, TimeUnit.SECONDS);
+        gi.addInputQueue(q2, 1.0, 10, TimeUnit.SECONDS);
+        gi.addQueues();
+        assertEquals(2, gi.getQueues().size());
+        assertTrue(gi.hasInputQueue(q1));
+        assertTrue(gi.hasInputQueue(q2));
+
+        for (int i = 0; i < 5; i++) {
+            assertTrue(gi.offer(q2, 1));
+        }
+        assertEquals(5, budget.getUsed());
+        drain(gi);
+        assertEquals(0, budget.getUsed());
+    }
+
+    private static void drain(StochasticCombiner<Integer> gi) {
+        for (QueueWrapper<Integer> qw : gi.getQueues()) {
+            qw.drainTo(new ArrayList<>(), Integer.MAX_VALUE);
+        }
+    }
+
     @Test
     public void hasInputQueue() throws Exception {
 